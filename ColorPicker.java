@@ -40,5 +40,48 @@ public class ColorPicker {
         
         return new Color(red, green, blue);
     }
+    
+    
+    /** Returns a pastel shade determined solely by the specified key.
+      * 
+      * Unlike nextColor, this method keeps no state: the same key always maps
+      * to the same shade, regardless of how many colors have been requested
+      * before or from which thread. This makes it suitable for coloring
+      * segments in any order, e.g. keyed by their lowest pixel index.
+      * 
+      * @param key a stable identifier for the thing being colored.
+      * @return a Color object whose components are derived from a hash of the
+      *         key. The same averaging as nextColor is applied.
+      */
+    public static Color colorFor(int key) {
+        
+        int hash = mix(key ^ ULTIMATE_SEED);
+        
+        int red = hash & 0xff;
+        int green = (hash >>> 8) & 0xff;
+        int blue = (hash >>> 16) & 0xff;
+        
+        red = (red + WHITE) / 2;
+        green = (green + WHITE) / 2;
+        blue = (blue + WHITE) / 2;
+        
+        return new Color(red, green, blue);
+    }
+    
+    
+    /** Scrambles the bits of the given value so that nearby keys produce
+      * unrelated shades (the finalizer step of MurmurHash3).
+      * 
+      * @param value the value to scramble.
+      * @return the scrambled value.
+      */
+    private static int mix(int value) {
+        value ^= value >>> 16;
+        value *= 0x85ebca6b;
+        value ^= value >>> 13;
+        value *= 0xc2b2ae35;
+        value ^= value >>> 16;
+        return value;
+    }
 }
 
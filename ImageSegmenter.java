@@ -4,6 +4,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.lang.Math;
 import java.util.ArrayList;
+import java.util.stream.IntStream;
+import java.io.IOException;
 
 /** Partitions a given image into similar segments and assigns a random color to each 
  * segment. 
@@ -15,6 +17,8 @@ import java.util.ArrayList;
  */
 public class ImageSegmenter {
 
+    private final static int PROGRESS_INTERVAL = 4096; // edges between checks
+
     /** Creates a grid of pixels given the colors of each pixel.
      *
      * This method takes in a grid of colors and assigns each color to a 
@@ -47,29 +51,193 @@ public class ImageSegmenter {
      *                    each pixel within every segment
      */
     public static Color[][] segment(Color[][] rgbArray, double granularity) {
+        return segment(rgbArray, granularity, false);
+    }
+
+    /** Assigns colors to the segmented pixels and places them into a new 
+     * color grid, optionally using stable per-segment colors.
+     *
+     * When stableColors is true, each segment's color is derived from its 
+     * lowest pixel index rather than drawn from a shared random sequence, so 
+     * the output is identical across runs and the painting pass runs in 
+     * parallel.
+     *
+     * @param rgbArray - a grid with colors in each position
+     * @param granularity - controls the size of each segment
+     * @param stableColors - whether to use stable, key-derived colors
+     *
+     * @return rgbArray - a new color grid with a color assigned to each 
+     *                    pixel within every segment
+     */
+    public static Color[][] segment(Color[][] rgbArray, double granularity, 
+                                    boolean stableColors) {
+        return segment(rgbArray, granularity, stableColors, 
+                       new SegmentationMonitor());
+    }
+
+    /** Assigns colors to the segmented pixels under the control of a 
+     * monitor.
+     *
+     * The monitor is told which stage is running and how far it has got. 
+     * If it is cancelled or its deadline passes while the edges are being 
+     * built or merged, the remaining edges are skipped and the segments 
+     * formed so far are colored; monitor.isPartial() then returns true. 
+     * A partial result always uses the stable coloring of assignStableColor, 
+     * since assignColor is slowest when there are many small segments; if 
+     * nothing was merged, every pixel is simply colored as its own segment 
+     * without building a forest. A complete result keeps the coloring 
+     * chosen by stableColors even if the monitor asks to stop afterwards.
+     *
+     * The monitor is polled between stages, per row while building edges 
+     * and every PROGRESS_INTERVAL edges while merging, so the call can still 
+     * overrun its deadline by up to one pixelGraph pass, one row of edges, 
+     * one sort (which cannot be interrupted) and one labelling and painting 
+     * pass, each proportional to the number of pixels.
+     *
+     * @param rgbArray - a grid with colors in each position
+     * @param granularity - controls the size of each segment
+     * @param stableColors - whether to use stable, key-derived colors
+     * @param monitor - receives progress and decides when to stop
+     *
+     * @return rgbArray - a new color grid with a color assigned to each 
+     *                    pixel within every segment
+     */
+    public static Color[][] segment(Color[][] rgbArray, double granularity, 
+                                    boolean stableColors, 
+                                    SegmentationMonitor monitor) {
         
         System.out.println("Size of rgbArray: row: " + rgbArray.length + " col: " + rgbArray[0].length);
 
+        if (monitor.shouldStop()){
+            monitor.markPartial();
+            return assignStableColor(singletonLabels(rgbArray.length, 
+                                                     rgbArray[0].length));
+        }
+
+        monitor.report("pixelGraph", 0, 1);
         Pixel[][] pixelGraph = pixelGraph(rgbArray);
+        monitor.report("pixelGraph", 1, 1);
 
         System.out.println("pixelGraph");
 
+        DisjointSetForest forest = buildForest(pixelGraph, granularity, monitor);
+        monitor.report("color", 0, 1);
+        if (forest == null){
+            rgbArray = assignStableColor(singletonLabels(pixelGraph.length, 
+                                                         pixelGraph[0].length));
+        } else if (stableColors || monitor.isPartial()){
+            rgbArray = assignStableColor(labelMap(pixelGraph, forest));
+        } else {
+            rgbArray = assignColor(pixelGraph, forest);
+        }
+
+        monitor.report("color", 1, 1);
+
+        System.out.println("AssignColor: ");
+        return rgbArray;
+    }
+
+    /** Segments the image and writes the labels to a run-length file.
+     *
+     * The labels are encoded row by row as they are computed, rather than 
+     * being rendered to an image and re-encoded. The file can be decoded 
+     * with RunLengthReader.
+     *
+     * @param rgbArray - a grid with colors in each position
+     * @param granularity - controls the size of each segment
+     * @param fileName - the name of the output file
+     * @param contours - whether to also store each segment's boundary pixels
+     * @throws IOException if the output file cannot be written
+     */
+    public static void segmentToFile(Color[][] rgbArray, double granularity,
+                                     String fileName, boolean contours) 
+                                     throws IOException {
+
+        Pixel[][] pixelGraph = pixelGraph(rgbArray);
+        DisjointSetForest forest = buildForest(pixelGraph, granularity);
+
+        RunLengthWriter writer = new RunLengthWriter(fileName, 
+                                    pixelGraph[0].length, pixelGraph.length, 
+                                    contours);
+        boolean written = false;
+        try {
+            writeLabels(pixelGraph, forest, writer);
+            writer.close();
+            written = true;
+        } finally {
+            if (!written){
+                writer.abort();
+            }
+        }
+    }
+
+    /** Segments the image and writes the labels and per-segment statistics 
+     * to a fixed-layout file that consumers can memory-map with 
+     * LabelMapReader.
+     *
+     * @param rgbArray - a grid with colors in each position
+     * @param granularity - controls the size of each segment
+     * @param fileName - the name of the output file
+     * @throws IOException if the output file cannot be written
+     */
+    public static void segmentToLabelFile(Color[][] rgbArray, double granularity,
+                                          String fileName) throws IOException {
+
+        Pixel[][] pixelGraph = pixelGraph(rgbArray);
+        DisjointSetForest forest = buildForest(pixelGraph, granularity);
+
+        LabelMapWriter.write(fileName, labelMap(pixelGraph, forest), pixelGraph);
+    }
+
+    /** Builds the sorted edges of the pixel grid and merges them into 
+     * segments.
+     *
+     * @param pixelGraph - a grid with pixels in each position
+     * @param granularity - controls the size of each segment
+     * @return forest - the disjoint set forest holding the segments
+     */
+    public static DisjointSetForest buildForest(Pixel[][] pixelGraph, 
+                                                double granularity){
+        return buildForest(pixelGraph, granularity, new SegmentationMonitor());
+    }
+
+    /** Builds the sorted edges of the pixel grid and merges them into 
+     * segments, stopping early if the monitor says so.
+     *
+     * @param pixelGraph - a grid with pixels in each position
+     * @param granularity - controls the size of each segment
+     * @param monitor - receives progress and decides when to stop
+     * @return forest - the disjoint set forest holding the segments formed 
+     *                  from the edges processed, or null if the monitor 
+     *                  stopped it before any edge was merged
+     */
+    public static DisjointSetForest buildForest(Pixel[][] pixelGraph, 
+                                                double granularity,
+                                                SegmentationMonitor monitor){
+
         HashSet<Edge> edgeTemp = new HashSet<Edge>();
-        edgeTemp = edge(pixelGraph);
+        edgeTemp = edge(pixelGraph, monitor);
+        if (monitor.shouldStop()){
+            monitor.markPartial();
+            return null;
+        }
         ArrayList<Edge> E = new ArrayList<Edge>();
         
         for (Edge current: edgeTemp){
             E.add(current);
         }
 
+        monitor.report("sort", 0, E.size());
         Collections.sort(E);
+        monitor.report("sort", E.size(), E.size());
+        if (monitor.shouldStop()){
+            monitor.markPartial();
+            return null;
+        }
 
         DisjointSetForest forest = new DisjointSetForest(pixelGraph);
-        merge(forest, E, pixelGraph, granularity);
-        rgbArray = assignColor(pixelGraph, forest);
-
-        System.out.println("AssignColor: ");
-        return rgbArray;
+        merge(forest, E, pixelGraph, granularity, monitor);
+        return forest;
     }
 
     /** Builds the list of edges between each pixel. 
@@ -81,10 +249,26 @@ public class ImageSegmenter {
      * @return edges - a list of edges
      */
     public static HashSet<Edge> edge(Pixel[][] pixelGraph){
+        return edge(pixelGraph, new SegmentationMonitor());
+    }
+
+    /** Builds the list of edges between each pixel, reporting the rows 
+     * completed to the monitor and stopping early if it says so.
+     *
+     * @param pixelGraph - a grid with pixels as each element
+     * @param monitor - receives progress and decides when to stop
+     * @return edges - a list of edges, incomplete if the monitor stopped it
+     */
+    public static HashSet<Edge> edge(Pixel[][] pixelGraph, 
+                                     SegmentationMonitor monitor){
 
         HashSet<Edge> edges = new HashSet<Edge>();
         
         for (int row = 0; row < pixelGraph.length; row++){
+            monitor.report("edges", row, pixelGraph.length);
+            if (monitor.shouldStop()){
+                break;
+            }
             for (int col = 0; col < pixelGraph[row].length; col++){
                 for (int i = -1; i < 2; i++){
                     for (int j = -1; j < 2; j++){
@@ -106,6 +290,9 @@ public class ImageSegmenter {
 
             }
         }
+        if (!monitor.shouldStop()){
+            monitor.report("edges", pixelGraph.length, pixelGraph.length);
+        }
         System.out.println("edge");
         return edges;
     }
@@ -122,8 +309,38 @@ public class ImageSegmenter {
      */
     public static void merge(DisjointSetForest forest, ArrayList<Edge> edges, 
                             Pixel[][] pixelGraph, double g){
+        merge(forest, edges, pixelGraph, g, new SegmentationMonitor());
+    }
 
+    /** Creates the segments of pixels, stopping early if the monitor says 
+     * so.
+     *
+     * The monitor is polled every PROGRESS_INTERVAL edges. Since the edges 
+     * are processed in order of weight, stopping early leaves the forest as 
+     * it would be after merging only the lightest edges.
+     * 
+     * @param forest - the disjoint set forest object.
+     * @param edges - the sorted list of edges
+     * @param pixelGraph - a grid with pixels in each position
+     * @param g - the granularity for the image
+     * @param monitor - receives progress and decides when to stop
+     * @return processed - the number of edges processed
+     */
+    public static int merge(DisjointSetForest forest, ArrayList<Edge> edges, 
+                            Pixel[][] pixelGraph, double g,
+                            SegmentationMonitor monitor){
+
+        int processed = 0;
         for (Edge e: edges){
+            if (processed % PROGRESS_INTERVAL == 0){
+                monitor.report("merge", processed, edges.size());
+                if (monitor.shouldStop()){
+                    monitor.markPartial();
+                    break;
+                }
+            }
+            processed++;
+
             Pixel vn = e.getFirstPixel();
             Pixel vm = e.getSecondPixel();
 
@@ -141,7 +358,9 @@ public class ImageSegmenter {
                 }
             }
         }
+        monitor.report("merge", processed, edges.size());
         System.out.println("merge");
+        return processed;
     }
 
     /** Assigns the random color to each pixel within similar segments.
@@ -176,6 +395,126 @@ public class ImageSegmenter {
         return colorArray;
     }
     
+    /** Labels each pixel with the lowest pixel index in its segment.
+     *
+     * The pixel index of (row, col) is row * width + col. Since the pixels 
+     * are visited in row-major order, the first pixel seen for a given root 
+     * is the segment's lowest-indexed member, which makes the label 
+     * independent of which pixel the forest happened to choose as root.
+     *
+     * @param pixelGraph - a grid with pixels in each element.
+     * @param forest - a disjoint set forest.
+     * @return labels - a grid with the segment label of each pixel.
+     */
+    public static int[][] labelMap(Pixel[][] pixelGraph, DisjointSetForest forest){
+
+        int width = pixelGraph[0].length;
+        int[][] labels = new int[pixelGraph.length][width];
+        HashMap<Pixel, Integer> rootLabels = new HashMap<Pixel, Integer>();
+
+        for (int i = 0; i < pixelGraph.length; i++){
+            labelRow(pixelGraph, forest, i, rootLabels, labels[i]);
+        }
+        return labels;
+    }
+
+    /** Labels each pixel as labelMap does, passing each row to the given 
+     * writer as soon as it is complete. Only one row of labels is held at a 
+     * time.
+     *
+     * @param pixelGraph - a grid with pixels in each element.
+     * @param forest - a disjoint set forest.
+     * @param writer - receives each finished row.
+     * @throws IOException if the writer fails to write a row.
+     */
+    public static void writeLabels(Pixel[][] pixelGraph, DisjointSetForest forest,
+                                   RunLengthWriter writer) throws IOException {
+
+        int[] row = new int[pixelGraph[0].length];
+        HashMap<Pixel, Integer> rootLabels = new HashMap<Pixel, Integer>();
+
+        for (int i = 0; i < pixelGraph.length; i++){
+            labelRow(pixelGraph, forest, i, rootLabels, row);
+            writer.writeRow(row);
+        }
+    }
+
+    /** Labels one row of pixels with the lowest pixel index in their 
+     * segments.
+     *
+     * @param pixelGraph - a grid with pixels in each element.
+     * @param forest - a disjoint set forest.
+     * @param i - the row to label; rows must be labelled in order.
+     * @param rootLabels - the labels of the roots seen in earlier rows.
+     * @param row - receives the labels of the row.
+     */
+    private static void labelRow(Pixel[][] pixelGraph, DisjointSetForest forest,
+                                 int i, HashMap<Pixel, Integer> rootLabels,
+                                 int[] row){
+
+        int width = pixelGraph[0].length;
+        for (int j = 0; j < width; j++){
+            Pixel root = forest.find(pixelGraph[i][j], pixelGraph);
+            Integer label = rootLabels.get(root);
+            if (label == null){
+                label = i * width + j;
+                rootLabels.put(root, label);
+            }
+            row[j] = label;
+        }
+    }
+
+    /** Labels each pixel as a segment of its own, as an unmerged forest 
+     * would.
+     *
+     * @param rows - the number of rows in the image.
+     * @param cols - the number of columns in the image.
+     * @return labels - a grid holding each pixel's own index.
+     */
+    public static int[][] singletonLabels(int rows, int cols){
+
+        int[][] labels = new int[rows][cols];
+        for (int i = 0; i < rows; i++){
+            for (int j = 0; j < cols; j++){
+                labels[i][j] = i * cols + j;
+            }
+        }
+        return labels;
+    }
+
+    /** Assigns a stable color to each pixel based on its segment label.
+     * 
+     * Each label is mapped to a color independently of every other, so the 
+     * rows are painted in parallel and the result does not depend on 
+     * iteration order or thread count. The labels must be pixel indices, as 
+     * produced by labelMap; one Color is created per label in a sequential 
+     * pass and shared by every pixel of the segment.
+     * 
+     * @param labels - a grid with the segment label of each pixel.
+     * @return colorArray - a grid with colors in each element.
+     */
+    public static Color[][] assignStableColor (int[][] labels){
+
+        Color[][] colorArray = new Color[labels.length][labels[0].length];
+        Color[] colors = new Color[labels.length * labels[0].length];
+
+        for (int i = 0; i < labels.length; i++){
+            for (int j = 0; j < labels[i].length; j++){
+                if (colors[labels[i][j]] == null){
+                    colors[labels[i][j]] = ColorPicker.colorFor(labels[i][j]);
+                }
+            }
+        }
+
+        IntStream.range(0, labels.length).parallel().forEach(i -> {
+            for (int j = 0; j < labels[i].length; j++){
+                colorArray[i][j] = colors[labels[i][j]];
+            }
+        });
+
+        return colorArray;
+    }
+    
     public static void main (String[] args){ 
 
         Color[][]  rgbArray = new Color[3][3];
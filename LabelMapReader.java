@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** Provides read-only, zero-copy access to a label map file written by
+  * LabelMapWriter.
+  * 
+  * Opening a file only maps it into memory and checks the header; labels and
+  * statistics are read straight from the mapping on each call, so the cost of
+  * opening does not depend on the size of the image.
+  * 
+  * @author agent
+  */
+public class LabelMapReader {
+    
+    private ByteBuffer buffer; // mapping of the whole file
+    private IntBuffer labels;  // view of the label array
+    private int width;
+    private int height;
+    private int segmentCount;
+    private int statsOffset;
+    
+    
+    /** Maps the specified file into memory.
+      * 
+      * @param fileName the name of the file to be read.
+      * @throws IOException if the file cannot be mapped or is not a
+      *         LabelMapWriter file.
+      */
+    public LabelMapReader(String fileName) throws IOException {
+        
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), 
+                                                    StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Label map file too large to map: " 
+                                          + fileName);
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, 
+                                      channel.size());
+        }
+        
+        if ((buffer.capacity() < LabelMapWriter.HEADER_BYTES)
+                || (buffer.getInt(0) != LabelMapWriter.MAGIC) 
+                || (buffer.getInt(4) != LabelMapWriter.VERSION)) {
+            throw new IOException("Not a label map file: " + fileName);
+        }
+        this.width = buffer.getInt(8);
+        this.height = buffer.getInt(12);
+        this.segmentCount = buffer.getInt(16);
+        
+        long labelBytes = 4L * width * height;
+        long expected = LabelMapWriter.HEADER_BYTES + labelBytes 
+                            + (long)LabelMapWriter.STAT_BYTES * segmentCount;
+        if ((width < 0) || (height < 0) || (segmentCount < 0) 
+                || (expected != buffer.capacity())) {
+            throw new IOException("Corrupt label map file: " + fileName);
+        }
+        this.statsOffset = LabelMapWriter.HEADER_BYTES + (int)labelBytes;
+        
+        this.labels = buffer.duplicate()
+                            .position(LabelMapWriter.HEADER_BYTES)
+                            .limit(statsOffset)
+                            .slice()
+                            .asIntBuffer();
+    }
+    
+    
+    /** Returns the number of columns in the label map.
+      * 
+      * @return the width of the label map.
+      */
+    public int getWidth() {
+        return width;
+    }
+    
+    
+    /** Returns the number of rows in the label map.
+      * 
+      * @return the height of the label map.
+      */
+    public int getHeight() {
+        return height;
+    }
+    
+    
+    /** Returns the number of segments in the label map.
+      * 
+      * @return the number of segments.
+      */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+    
+    
+    /** Returns the segment label of the pixel at the given location.
+      * 
+      * @param row the row index of the pixel.
+      * @param col the column index of the pixel.
+      * @throws IndexOutOfBoundsException if the location is outside the image.
+      * @return the label of the pixel's segment.
+      */
+    public int getLabel(int row, int col) {
+        if ((row < 0) || (row >= height) || (col < 0) || (col >= width)) {
+            throw new IndexOutOfBoundsException("Illegal pixel!");
+        }
+        return labels.get(row * width + col);
+    }
+    
+    
+    /** Returns a read-only view of the whole label array, in row-major order.
+      * 
+      * @return an IntBuffer backed directly by the mapped file.
+      */
+    public IntBuffer getLabels() {
+        return labels.duplicate();
+    }
+    
+    
+    /** Returns the index in the statistics table of the segment with the 
+      * given label.
+      * 
+      * @param label the label of the segment.
+      * @return the segment's index, or -1 if there is no such segment.
+      */
+    public int indexOf(int label) {
+        int low = 0;
+        int high = segmentCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int current = getStatLabel(mid);
+            if (current < label)
+                low = mid + 1;
+            else if (current > label)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+    
+    
+    /** Returns the label of the segment at the given index.
+      * 
+      * @param index the index of the segment in the statistics table.
+      * @return the segment's label.
+      */
+    public int getStatLabel(int index) {
+        return buffer.getInt(stat(index));
+    }
+    
+    
+    /** Returns the number of pixels in the segment at the given index.
+      * 
+      * @param index the index of the segment in the statistics table.
+      * @return the segment's size in pixels.
+      */
+    public int getSize(int index) {
+        return buffer.getInt(stat(index) + 4);
+    }
+    
+    
+    /** Returns the bounding box of the segment at the given index.
+      * 
+      * @param index the index of the segment in the statistics table.
+      * @return {minRow, minCol, maxRow, maxCol}, all inclusive.
+      */
+    public int[] getBounds(int index) {
+        int offset = stat(index);
+        return new int[] {buffer.getInt(offset + 8), buffer.getInt(offset + 12),
+                          buffer.getInt(offset + 16), buffer.getInt(offset + 20)};
+    }
+    
+    
+    /** Returns the mean luminance of the segment at the given index.
+      * 
+      * @param index the index of the segment in the statistics table.
+      * @return the mean luminance of the segment's pixels.
+      */
+    public double getMeanLuminance(int index) {
+        return buffer.getDouble(stat(index) + 24);
+    }
+    
+    
+    /** Returns the file offset of the statistics record at the given index.
+      * 
+      * @param index the index of the segment in the statistics table.
+      * @throws IndexOutOfBoundsException if there is no such record.
+      * @return the offset of the record.
+      */
+    private int stat(int index) {
+        if ((index < 0) || (index >= segmentCount)) {
+            throw new IndexOutOfBoundsException("No segment at " + index);
+        }
+        return statsOffset + index * LabelMapWriter.STAT_BYTES;
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Writes a segmentation label map to a fixed-layout binary file that can be
+  * memory-mapped by consumers (see LabelMapReader).
+  * 
+  * File layout (all values big-endian):
+  * <pre>
+  *   header: int MAGIC, int VERSION, int width, int height, int segmentCount,
+  *           int reserved
+  *   labels: int[height * width], row-major
+  *   stats:  segmentCount records of STAT_BYTES bytes, in ascending label
+  *           order: int label, int size, int minRow, int minCol, int maxRow,
+  *           int maxCol, double meanLuminance
+  * </pre>
+  * Labels use the row * width + col numbering of ImageSegmenter.labelMap.
+  * 
+  * @author agent
+  */
+public class LabelMapWriter {
+    
+    public final static int MAGIC = 0x4c424d50; // "LBMP"
+    public final static int VERSION = 1;
+    public final static int HEADER_BYTES = 6 * 4;
+    public final static int STAT_BYTES = 6 * 4 + 8;
+    
+    
+    /** Writes the given label map and its per-segment statistics to the
+      * specified file.
+      * 
+      * @param fileName the name of the output file.
+      * @param labels a grid with the segment label of each pixel.
+      * @param pixelGraph the pixels the labels were computed from.
+      * @throws IOException if the file cannot be written or would exceed the
+      *         2 GB mapping limit, in which case it is left untouched.
+      * @throws IllegalArgumentException if labels and pixelGraph differ in 
+      *         size or a label is not a pixel index.
+      */
+    public static void write(String fileName, int[][] labels, 
+                             Pixel[][] pixelGraph) throws IOException {
+        
+        int height = labels.length;
+        int width = labels[0].length;
+        if ((pixelGraph.length != height) || (pixelGraph[0].length != width)) {
+            throw new IllegalArgumentException("Labels do not match pixels!");
+        }
+        
+        long size = HEADER_BYTES + 4L * width * height;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Label map is too large to map!");
+        }
+        
+        // Statistics indexed by label; each label is a pixel index, so the
+        // arrays are dense enough and avoid boxing a key per pixel
+        int pixels = width * height;
+        int[] count = new int[pixels];
+        int[] minRow = new int[pixels];
+        int[] minCol = new int[pixels];
+        int[] maxRow = new int[pixels];
+        int[] maxCol = new int[pixels];
+        double[] luminance = new double[pixels];
+        int segmentCount = 0;
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                int label = labels[i][j];
+                if ((label < 0) || (label >= pixels)) {
+                    throw new IllegalArgumentException("Label out of range: "
+                                                           + label);
+                }
+                if (count[label] == 0) {
+                    segmentCount++;
+                    minRow[label] = i;
+                    minCol[label] = j;
+                    maxCol[label] = j;
+                }
+                count[label]++;
+                minCol[label] = Math.min(minCol[label], j);
+                maxRow[label] = i;
+                maxCol[label] = Math.max(maxCol[label], j);
+                luminance[label] += pixelGraph[i][j].getLuminance();
+            }
+        }
+        
+        size += (long)STAT_BYTES * segmentCount;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Label map is too large to map!");
+        }
+        
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+             FileChannel channel = file.getChannel()) {
+            
+            file.setLength(0);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                                                  0, size);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(width);
+            buffer.putInt(height);
+            buffer.putInt(segmentCount);
+            buffer.putInt(0);
+            
+            for (int i = 0; i < height; i++) {
+                buffer.asIntBuffer().put(labels[i]);
+                buffer.position(buffer.position() + 4 * width);
+            }
+            
+            for (int label = 0; label < pixels; label++) {
+                if (count[label] == 0)
+                    continue;
+                buffer.putInt(label);
+                buffer.putInt(count[label]);
+                buffer.putInt(minRow[label]);
+                buffer.putInt(minCol[label]);
+                buffer.putInt(maxRow[label]);
+                buffer.putInt(maxCol[label]);
+                buffer.putDouble(luminance[label] / count[label]);
+            }
+            buffer.force();
+        }
+    }
+}
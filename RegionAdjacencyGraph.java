@@ -0,0 +1,157 @@
+/** A region adjacency graph of a segmented image, stored in compressed sparse
+  * row (CSR) form.
+  * 
+  * Segments are numbered 0 to getSegmentCount() - 1 in ascending label order.
+  * The neighbours of segment s occupy entries getStart(s) to getEnd(s) - 1,
+  * and each entry describes the shared boundary: the number of pixel edges
+  * crossing it and the minimum and mean weight of those edges. Each boundary
+  * appears twice, once in the row of each of its two segments, with the same
+  * values, and within a row the entries are in ascending order of minimum
+  * weight.
+  * 
+  * This implementation is immutable.
+  * 
+  * @author agent
+  */
+public class RegionAdjacencyGraph {
+    
+    private int[] labels;         // segment -> label
+    private int[] offsets;        // segment -> first entry; length segments + 1
+    private int[] neighbors;      // entry -> neighbouring segment
+    private int[] boundaryLength; // entry -> number of crossing edges
+    private double[] minWeight;   // entry -> lightest crossing edge
+    private double[] meanWeight;  // entry -> mean crossing edge weight
+    
+    
+    /** Constructs a graph from its CSR arrays, which are not copied.
+      * 
+      * @param labels the label of each segment, ascending.
+      * @param offsets the first entry of each segment, followed by the total
+      *        number of entries.
+      * @param neighbors the neighbouring segment of each entry.
+      * @param boundaryLength the boundary length of each entry.
+      * @param minWeight the minimum edge weight of each entry.
+      * @param meanWeight the mean edge weight of each entry.
+      */
+    RegionAdjacencyGraph(int[] labels, int[] offsets, int[] neighbors,
+                         int[] boundaryLength, double[] minWeight, 
+                         double[] meanWeight) {
+        this.labels = labels;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.boundaryLength = boundaryLength;
+        this.minWeight = minWeight;
+        this.meanWeight = meanWeight;
+    }
+    
+    
+    /** Returns the number of segments (nodes) in the graph.
+      * 
+      * @return the number of segments.
+      */
+    public int getSegmentCount() {
+        return labels.length;
+    }
+    
+    
+    /** Returns the label of the given segment, as used by
+      * ImageSegmenter.labelMap.
+      * 
+      * @param segment the segment number.
+      * @return the lowest pixel index in the segment.
+      */
+    public int getLabel(int segment) {
+        return labels[segment];
+    }
+    
+    
+    /** Returns the segment number of the given label.
+      * 
+      * @param label a segment label.
+      * @return the segment number, or -1 if there is no such label.
+      */
+    public int getSegment(int label) {
+        int low = 0;
+        int high = labels.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (labels[mid] < label)
+                low = mid + 1;
+            else if (labels[mid] > label)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+    
+    
+    /** Returns the first entry of the given segment's row.
+      * 
+      * @param segment the segment number.
+      * @return the index of the segment's first entry.
+      */
+    public int getStart(int segment) {
+        return offsets[segment];
+    }
+    
+    
+    /** Returns one past the last entry of the given segment's row.
+      * 
+      * @param segment the segment number.
+      * @return the index after the segment's last entry.
+      */
+    public int getEnd(int segment) {
+        return offsets[segment + 1];
+    }
+    
+    
+    /** Returns the neighbouring segment of the given entry.
+      * 
+      * @param entry the entry index.
+      * @return the segment number of the neighbour.
+      */
+    public int getNeighbor(int entry) {
+        return neighbors[entry];
+    }
+    
+    
+    /** Returns the length of the boundary described by the given entry.
+      * 
+      * @param entry the entry index.
+      * @return the number of pixel edges crossing the boundary.
+      */
+    public int getBoundaryLength(int entry) {
+        return boundaryLength[entry];
+    }
+    
+    
+    /** Returns the minimum weight across the boundary of the given entry.
+      * 
+      * @param entry the entry index.
+      * @return the weight of the lightest edge crossing the boundary.
+      */
+    public double getMinWeight(int entry) {
+        return minWeight[entry];
+    }
+    
+    
+    /** Returns the mean weight across the boundary of the given entry.
+      * 
+      * @param entry the entry index.
+      * @return the mean weight of the edges crossing the boundary.
+      */
+    public double getMeanWeight(int entry) {
+        return meanWeight[entry];
+    }
+    
+    
+    /** Returns the total number of entries, i.e. twice the number of
+      * adjacent segment pairs.
+      * 
+      * @return the number of entries in the graph.
+      */
+    public int getEntryCount() {
+        return neighbors.length;
+    }
+}
@@ -0,0 +1,523 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/** Reads segmentation files produced by RunLengthWriter.
+  * 
+  * Only the header and footer are read when the file is opened; rows are
+  * decoded on demand, starting from the nearest keyframe row, so a single
+  * segment or a range of rows can be recovered without inflating the whole
+  * label map.
+  * 
+  * @author agent
+  */
+public class RunLengthReader {
+    
+    // Generous bound on a block's uncompressed size, to reject corrupt lengths
+    private final static int MAX_BLOCK_BYTES = 1 << 30;
+    
+    private RandomAccessFile file;
+    private int width;
+    private int height;
+    private boolean contours;
+    private long footerOffset;
+    private long[] keyframeOffsets; // offset of each block
+    private int[] segmentLabels; // ascending
+    private int[] lastRows;      // last row of each segment in segmentLabels
+    
+    
+    /** Opens the specified file and reads its header and footer.
+      *
+      * @param fileName the name of the file to be read.
+      * @throws IOException if the file cannot be read or is not a
+      *         RunLengthWriter file.
+      */
+    public RunLengthReader(String fileName) throws IOException {
+        
+        this.file = new RandomAccessFile(fileName, "r");
+        
+        try {
+            readIndex(fileName);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (RuntimeException e) {
+            file.close();
+            throw new IOException("Corrupt run-length segmentation file: "
+                                      + fileName, e);
+        }
+    }
+    
+    
+    /** Reads the header and footer of the open file.
+      *
+      * @param fileName the name of the file, for error messages.
+      * @throws IOException if the file cannot be read or is not a
+      *         RunLengthWriter file.
+      */
+    private void readIndex(String fileName) throws IOException {
+        
+        if ((file.readInt() != RunLengthWriter.MAGIC)
+                || (file.readInt() != RunLengthWriter.VERSION)) {
+            throw new IOException("Not a run-length segmentation file: "
+                                      + fileName);
+        }
+        this.width = file.readInt();
+        this.height = file.readInt();
+        this.contours = (file.readInt() != 0);
+        if ((width <= 0) || (height <= 0)
+                || ((long)width * height > Integer.MAX_VALUE)) {
+            throw new IOException("Corrupt run-length segmentation file: "
+                                      + fileName);
+        }
+        
+        int blocks = (height - 1) / RunLengthWriter.KEYFRAME_INTERVAL + 1;
+        long tableOffset = file.length() - 8 - 8L * blocks;
+        file.seek(file.length() - 8);
+        this.footerOffset = file.readLong();
+        if ((footerOffset < RunLengthWriter.HEADER_BYTES)
+                || (footerOffset > tableOffset)) {
+            throw new IOException("Corrupt run-length segmentation file: "
+                                      + fileName);
+        }
+        
+        this.keyframeOffsets = new long[blocks];
+        ByteBuffer table = read(tableOffset, 8L * blocks);
+        for (int k = 0; k < blocks; k++) {
+            keyframeOffsets[k] = table.getLong();
+            if ((keyframeOffsets[k] < RunLengthWriter.HEADER_BYTES)
+                    || (keyframeOffsets[k] > footerOffset)
+                    || ((k > 0) && (keyframeOffsets[k] < keyframeOffsets[k - 1]))) {
+                throw new IOException("Corrupt block offsets: " + fileName);
+            }
+        }
+        
+        ByteBuffer footer = inflate(footerOffset, tableOffset);
+        int segmentCount = readVarint(footer);
+        if (segmentCount > width * height) {
+            throw new IOException("Corrupt run-length segmentation file: "
+                                      + fileName);
+        }
+        this.segmentLabels = new int[segmentCount];
+        this.lastRows = new int[segmentCount];
+        int label = 0;
+        for (int s = 0; s < segmentCount; s++) {
+            label += readVarint(footer);
+            segmentLabels[s] = label;
+            lastRows[s] = label / width + readVarint(footer);
+            if (((s > 0) && (label <= segmentLabels[s - 1]))
+                    || (label >= width * height) || (lastRows[s] >= height)) {
+                throw new IOException("Corrupt segment table: " + fileName);
+            }
+        }
+    }
+    
+    
+    /** Returns the number of columns in the label map.
+      *
+      * @return the width of the label map.
+      */
+    public int getWidth() {
+        return width;
+    }
+    
+    
+    /** Returns the number of rows in the label map.
+      *
+      * @return the height of the label map.
+      */
+    public int getHeight() {
+        return height;
+    }
+    
+    
+    /** Returns the number of distinct segments in the label map.
+      *
+      * @return the number of segments.
+      */
+    public int getSegmentCount() {
+        return segmentLabels.length;
+    }
+    
+    
+    /** Returns whether the file holds segment boundary contours.
+      *
+      * @return true if readContour is supported by this file.
+      */
+    public boolean hasContours() {
+        return contours;
+    }
+    
+    
+    /** Decodes the labels of the given range of rows.
+      *
+      * @param firstRow the first row to decode.
+      * @param lastRow the last row to decode (inclusive).
+      * @throws IOException if the rows cannot be read or are corrupt.
+      * @throws IllegalArgumentException if the range is empty or out of bounds.
+      * @return a (lastRow - firstRow + 1) x width array of labels.
+      */
+    public int[][] readRows(int firstRow, int lastRow) throws IOException {
+        
+        checkRows(firstRow, lastRow);
+        
+        int[][] labels = new int[lastRow - firstRow + 1][width];
+        decode(firstRow, lastRow, labels, null);
+        return labels;
+    }
+    
+    
+    /** Returns the runs of pixels belonging to the given segment.
+      *
+      * Only the rows spanned by the segment, back to the nearest keyframe,
+      * are read.
+      *
+      * @param label the label of the segment.
+      * @throws IOException if the rows cannot be read or are corrupt.
+      * @throws IllegalArgumentException if there is no such segment.
+      * @return a list of {row, startCol, length} triples, in row-major order.
+      */
+    public ArrayList<int[]> readSegment(int label) throws IOException {
+        
+        int s = indexOf(label);
+        int firstRow = label / width;
+        int[][] labels = new int[lastRows[s] - firstRow + 1][width];
+        decode(firstRow, lastRows[s], labels, null);
+        
+        ArrayList<int[]> segment = new ArrayList<int[]>();
+        for (int i = 0; i < labels.length; i++) {
+            int start = -1;
+            for (int j = 0; j <= width; j++) {
+                boolean inside = (j < width) && (labels[i][j] == label);
+                if (inside && (start < 0)) {
+                    start = j;
+                } else if (!inside && (start >= 0)) {
+                    segment.add(new int[] {firstRow + i, start, j - start});
+                    start = -1;
+                }
+            }
+        }
+        return segment;
+    }
+    
+    
+    /** Returns the boundary pixels of the given segment.
+      *
+      * @param label the label of the segment.
+      * @throws IOException if the rows cannot be read or are corrupt.
+      * @throws IllegalArgumentException if there is no such segment, or the
+      *         file was written without contours.
+      * @return the row * width + col indices of the segment's boundary pixels,
+      *         in row-major order.
+      */
+    public int[] readContour(int label) throws IOException {
+        
+        if (!contours) {
+            throw new IllegalArgumentException("File has no contours!");
+        }
+        int s = indexOf(label);
+        int firstRow = label / width;
+        int rows = lastRows[s] - firstRow + 1;
+        int[][] labels = new int[rows][width];
+        int[][] boundaries = new int[rows][];
+        decode(firstRow, lastRows[s], labels, boundaries);
+        
+        int count = 0;
+        int[] contour = new int[16];
+        for (int i = 0; i < rows; i++) {
+            for (int col: boundaries[i]) {
+                if (labels[i][col] == label) {
+                    if (count == contour.length)
+                        contour = Arrays.copyOf(contour, 2 * count);
+                    contour[count++] = (firstRow + i) * width + col;
+                }
+            }
+        }
+        return Arrays.copyOf(contour, count);
+    }
+    
+    
+    /** Closes the underlying file.
+      *
+      * @throws IOException if the file cannot be closed.
+      */
+    public void close() throws IOException {
+        file.close();
+    }
+    
+    
+    /** Returns the position of the given label in segmentLabels.
+      *
+      * @param label the label of the segment.
+      * @throws IllegalArgumentException if there is no such segment.
+      * @return the segment's index.
+      */
+    private int indexOf(int label) {
+        int s = Arrays.binarySearch(segmentLabels, label);
+        if (s < 0) {
+            throw new IllegalArgumentException("No segment labelled " + label);
+        }
+        return s;
+    }
+    
+    
+    /** Checks that the given row range is non-empty and within the image.
+      *
+      * @param firstRow the first row of the range.
+      * @param lastRow the last row of the range (inclusive).
+      * @throws IllegalArgumentException if the range is invalid.
+      */
+    private void checkRows(int firstRow, int lastRow) {
+        if ((firstRow < 0) || (lastRow >= height) || (firstRow > lastRow)) {
+            throw new IllegalArgumentException("Illegal row range!");
+        }
+    }
+    
+    
+    /** Decodes the given range of rows, starting from the keyframe at or
+      * before firstRow.
+      *
+      * @param firstRow the first row wanted.
+      * @param lastRow the last row wanted (inclusive).
+      * @param labels receives the labels of each wanted row.
+      * @param boundaries if not null, receives the boundary columns of each
+      *        wanted row.
+      * @throws IOException if the rows cannot be read or are corrupt.
+      */
+    private void decode(int firstRow, int lastRow, int[][] labels,
+                        int[][] boundaries) throws IOException {
+        
+        int interval = RunLengthWriter.KEYFRAME_INTERVAL;
+        int startRow = firstRow - firstRow % interval;
+        
+        int[] above = new int[width];
+        int[] current = new int[width];
+        int[] transitions = new int[width];
+        ByteBuffer codes = null;
+        try {
+            for (int row = startRow; row <= lastRow; row++) {
+                if (row % interval == 0) {
+                    int k = row / interval;
+                    long end = (k + 1 < keyframeOffsets.length)
+                                   ? keyframeOffsets[k + 1] : footerOffset;
+                    codes = inflate(keyframeOffsets[k], end);
+                }
+                decodeRow(codes, row, above, current, transitions);
+                if (row >= firstRow)
+                    System.arraycopy(current, 0, labels[row - firstRow], 0,
+                                     width);
+                
+                if (contours) {
+                    int[] cols = readBoundary(codes, row, current);
+                    if ((boundaries != null) && (row >= firstRow))
+                        boundaries[row - firstRow] = cols;
+                }
+                
+                int[] swap = above;
+                above = current;
+                current = swap;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated row data!", e);
+        }
+    }
+    
+    
+    /** Reads the stored boundary pixels of one row and merges them with
+      * those at the ends of its runs.
+      *
+      * @param codes the coded block, positioned after the row's runs.
+      * @param row the index of the row.
+      * @param labels the labels of the row.
+      * @throws IOException if the boundary list is corrupt.
+      * @return the boundary columns of the row, in ascending order.
+      */
+    private int[] readBoundary(ByteBuffer codes, int row, int[] labels)
+        throws IOException {
+        
+        int count = readVarint(codes);
+        if (count > width) {
+            throw new IOException("Corrupt boundary in row " + row);
+        }
+        boolean[] boundary = new boolean[width];
+        int total = 0;
+        int col = -1;
+        for (int b = 0; b < count; b++) {
+            col += readVarint(codes) + 1;
+            if ((col < 0) || (col >= width) || boundary[col]) {
+                throw new IOException("Corrupt boundary in row " + row);
+            }
+            boundary[col] = true;
+            total++;
+        }
+        for (int j = 0; j < width; j++) {
+            if (!boundary[j] && RunLengthWriter.isHorizontalBoundary(labels, j)) {
+                boundary[j] = true;
+                total++;
+            }
+        }
+        
+        int[] cols = new int[total];
+        int next = 0;
+        for (int j = 0; j < width; j++) {
+            if (boundary[j])
+                cols[next++] = j;
+        }
+        return cols;
+    }
+    
+    
+    /** Decodes the runs of one row.
+      *
+      * @param codes the coded block, positioned at the start of the row.
+      * @param row the index of the row.
+      * @param above the labels of the row above, if the row is not a keyframe.
+      * @param labels receives the labels of the row.
+      * @param transitions scratch space for the transitions of the row above.
+      * @throws IOException if the row is corrupt.
+      */
+    private void decodeRow(ByteBuffer codes, int row, int[] above,
+                           int[] labels, int[] transitions) throws IOException {
+        
+        boolean keyframe = (row % RunLengthWriter.KEYFRAME_INTERVAL == 0);
+        int transitionCount = keyframe ? 0
+                                  : RunLengthWriter.findTransitions(above,
+                                                                    transitions);
+        int next = 0;
+        int previous = 0;
+        int beforePrevious = -1;
+        int start = 0;
+        while (start < width) {
+            int code = codes.get() & 0xff;
+            int labelTag = code >>> RunLengthWriter.END_BITS;
+            int endCode = code & ((1 << RunLengthWriter.END_BITS) - 1);
+            
+            int end;
+            if (endCode == RunLengthWriter.EXPLICIT_END) {
+                int length = readVarint(codes);
+                if ((length < 1) || (length > width - start)) {
+                    throw new IOException("Run overruns row " + row);
+                }
+                end = start + length;
+            } else {
+                while ((next < transitionCount) && (transitions[next] <= start))
+                    next++;
+                int span = 2 * RunLengthWriter.MAX_SHIFT + 1;
+                int t = endCode / span;
+                if ((endCode > RunLengthWriter.EXPLICIT_END)
+                        || (next + t >= transitionCount)) {
+                    throw new IOException("Corrupt run in row " + row);
+                }
+                end = transitions[next + t] + endCode % span
+                          - RunLengthWriter.MAX_SHIFT;
+                if ((end <= start) || (end > width)) {
+                    throw new IOException("Run overruns row " + row);
+                }
+            }
+            
+            int label;
+            if ((labelTag == RunLengthWriter.SAME_AS_ABOVE) && !keyframe) {
+                label = above[start];
+            } else if (labelTag == RunLengthWriter.NEW_SEGMENT) {
+                label = row * width + start;
+            } else if ((labelTag == RunLengthWriter.ABOVE_END) && !keyframe) {
+                label = above[end - 1];
+            } else if ((labelTag == RunLengthWriter.BEFORE_PREVIOUS)
+                           && (beforePrevious >= 0)) {
+                label = beforePrevious;
+            } else if (labelTag == RunLengthWriter.DELTA) {
+                int zigzag = readVarint(codes);
+                label = previous + ((zigzag >>> 1) ^ -(zigzag & 1));
+                if ((label < 0) || (label > row * width + start)) {
+                    throw new IOException("Corrupt label in row " + row);
+                }
+            } else {
+                throw new IOException("Corrupt run in row " + row);
+            }
+            
+            Arrays.fill(labels, start, end, label);
+            beforePrevious = previous;
+            previous = label;
+            start = end;
+        }
+    }
+    
+    
+    /** Reads and inflates the block stored between the given file offsets.
+      *
+      * @param start the offset of the block's uncompressed length.
+      * @param end the offset just past the block.
+      * @throws IOException if the block cannot be read or is corrupt.
+      * @return a buffer holding the uncompressed block.
+      */
+    private ByteBuffer inflate(long start, long end) throws IOException {
+        
+        ByteBuffer block = read(start, end - start);
+        int rawLength = block.getInt();
+        if ((rawLength < 0) || (rawLength > MAX_BLOCK_BYTES)) {
+            throw new IOException("Corrupt block length " + rawLength);
+        }
+        
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(block.array(), 4, block.remaining());
+            int filled = 0;
+            while (filled < rawLength) {
+                int count = inflater.inflate(raw, filled, rawLength - filled);
+                if ((count == 0)
+                        && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated block!");
+                }
+                filled += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block!", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(raw);
+    }
+    
+    
+    /** Reads a varint written by RunLengthWriter.
+      *
+      * @param buffer the buffer to read from.
+      * @throws IOException if the varint is longer than an int.
+      * @return the value read, treated as unsigned.
+      */
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("Malformed varint!");
+    }
+    
+    
+    /** Reads the given number of bytes starting at the given file offset.
+      *
+      * @param offset the file offset to start reading from.
+      * @param length the number of bytes to read.
+      * @throws IOException if the bytes cannot be read.
+      * @return a buffer holding the bytes read.
+      */
+    private ByteBuffer read(long offset, long length) throws IOException {
+        if ((length < 0) || (length > Integer.MAX_VALUE)) {
+            throw new IOException("Illegal read of " + length + " bytes!");
+        }
+        byte[] bytes = new byte[(int)length];
+        file.seek(offset);
+        file.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
+    
\ No newline at end of file
@@ -0,0 +1,428 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+/** Writes a segmentation label map to a compact, lossless binary file.
+  * 
+  * Rows are supplied one at a time, in order, and each is stored as a list of
+  * runs, so the writer can be driven directly from the labelling pass without
+  * holding the whole map; only the last two rows and the current block are
+  * kept. Labels must be those of ImageSegmenter.labelMap, i.e. each segment
+  * is labelled with the row * width + col index of its first pixel in
+  * row-major order.
+  * 
+  * Each run is coded relative to the row above, in the manner of the
+  * two-dimensional fax codes. Its end is usually within MAX_SHIFT pixels of
+  * one of the first REFERENCES transitions (label changes, or the row end) to
+  * the right of its first pixel in the row above; endCode
+  * t * (2 * MAX_SHIFT + 1) + shift + MAX_SHIFT says it is transition t plus
+  * shift, and EXPLICIT_END that a varint length follows. Its label is usually
+  * the label above its first or last pixel, the label of the run before the
+  * previous one, or, for a new segment, its own index; otherwise labelTag is
+  * DELTA and a zig-zag varint difference from the previous run's label (or
+  * 0) follows. Each run starts with one code byte,
+  * (labelTag << END_BITS) | endCode.
+  * 
+  * Rows are grouped into blocks of KEYFRAME_INTERVAL rows. The first row of a
+  * block is coded without reference to the row above, so that decoding can
+  * start there, and each block is compressed with Deflater to squeeze out the
+  * remaining redundancy in the code bytes. Optionally, each row is followed
+  * by its boundary pixels (those with a 4-neighbour in another segment),
+  * which is why a row is only coded once the row below it has been supplied.
+  * Only the boundary pixels that are not at either end of a run are listed,
+  * since the others follow from the runs.
+  * 
+  * File layout (ints and longs big-endian, varints 7 bits per byte, low
+  * bits first):
+  * <pre>
+  *   header:  int MAGIC, int VERSION, int width, int height, int hasContours
+  *   blocks:  for each block: int rawLength, deflated row codes, each row
+  *            being its runs, then [varint count, varint column gaps] of
+  *            the boundary pixels not at the end of a run
+  *   footer:  int rawLength, deflated segment table: varint segmentCount,
+  *            then for each segment in ascending label order:
+  *                varint label gap, varint lastRow - firstRow
+  *            long offset of each block
+  *   trailer: long footer offset
+  * </pre>
+  * A segment's first row is label / width, so it is not stored. See
+  * RunLengthReader for decoding.
+  * 
+  * @author agent
+  */
+public class RunLengthWriter {
+    
+    public final static int MAGIC = 0x524c4553; // "RLES"
+    public final static int VERSION = 2;
+    public final static int KEYFRAME_INTERVAL = 64;
+    final static int SAME_AS_ABOVE = 0;   // label above the run's first pixel
+    final static int NEW_SEGMENT = 1;     // the run's own first pixel index
+    final static int ABOVE_END = 2;       // label above the run's last pixel
+    final static int BEFORE_PREVIOUS = 3; // label of the run two back
+    final static int DELTA = 4;           // previous label plus a delta
+    final static int END_BITS = 5;
+    final static int MAX_SHIFT = 3;
+    final static int REFERENCES = 3;
+    final static int EXPLICIT_END = REFERENCES * (2 * MAX_SHIFT + 1);
+    final static int HEADER_BYTES = 5 * 4;
+    
+    private DataOutputStream out;
+    private String fileName;
+    private int width;
+    private int height;
+    private boolean contours;
+    private int rowsSupplied;
+    private long position;
+    private long[] keyframeOffsets;
+    private ByteArrayOutputStream block; // uncompressed codes of this block
+    private Deflater deflater;
+    private byte[] deflated;
+    private HashMap<Integer, Integer> lastRows; // label -> last row seen
+    private int[] segmentLabels;                // labels in ascending order
+    private int segmentCount;
+    private int[] aboveRow;   // row before the pending row
+    private int[] pendingRow; // last row supplied, not yet coded
+    private int[] transitions; // transitions of the row above the coded row
+    
+    
+    /** Opens the specified file and writes the header.
+      *
+      * @param fileName the name of the output file.
+      * @param width the number of columns in the label map.
+      * @param height the number of rows in the label map.
+      * @param contours whether to record each row's boundary pixels.
+      * @throws IOException if the file cannot be opened or written.
+      * @throws IllegalArgumentException if width or height is not positive.
+      */
+    public RunLengthWriter(String fileName, int width, int height,
+                           boolean contours) throws IOException {
+        
+        if ((width <= 0) || (height <= 0)) {
+            throw new IllegalArgumentException("Label map must be non-empty!");
+        }
+        
+        this.fileName = fileName;
+        this.width = width;
+        this.height = height;
+        this.contours = contours;
+        this.rowsSupplied = 0;
+        this.keyframeOffsets = new long[(height - 1) / KEYFRAME_INTERVAL + 1];
+        this.block = new ByteArrayOutputStream();
+        this.deflated = new byte[4096];
+        this.lastRows = new HashMap<Integer, Integer>();
+        this.segmentLabels = new int[16];
+        this.segmentCount = 0;
+        this.transitions = new int[width];
+        
+        this.out = new DataOutputStream(new BufferedOutputStream(
+                                            new FileOutputStream(fileName)));
+        this.deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(contours ? 1 : 0);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+        this.position = HEADER_BYTES;
+    }
+    
+    
+    /** Supplies the next row of labels. The row is coded once the row below
+      * it is supplied, or on close if it is the last.
+      *
+      * @param labels the labels of the next row; must have width entries.
+      *        The array is copied, so the caller may reuse it.
+      * @throws IOException if an earlier row cannot be written.
+      * @throws IllegalArgumentException if the row has the wrong length or
+      *         holds a label that is not a labelMap label.
+      * @throws IllegalStateException if all rows have already been supplied.
+      */
+    public void writeRow(int[] labels) throws IOException {
+        
+        if ((labels == null) || (labels.length != width)) {
+            throw new IllegalArgumentException("Row must have " + width
+                                                   + " labels!");
+        }
+        if (rowsSupplied == height) {
+            throw new IllegalStateException("All rows already written!");
+        }
+        
+        int row = rowsSupplied;
+        for (int j = 0; j < width; j++) {
+            if ((j == 0) || (labels[j] != labels[j - 1]))
+                recordLabel(labels[j], row, j);
+        }
+        
+        if (pendingRow != null)
+            encodeRow(row - 1, aboveRow, pendingRow, labels);
+        
+        // Recycle the oldest row buffer for the new row
+        int[] spare = aboveRow;
+        aboveRow = pendingRow;
+        pendingRow = (spare == null) ? new int[width] : spare;
+        System.arraycopy(labels, 0, pendingRow, 0, width);
+        rowsSupplied++;
+    }
+    
+    
+    /** Writes the last row and the footer, and closes the file.
+      *
+      * @throws IOException if the file cannot be written.
+      * @throws IllegalStateException if fewer than height rows were supplied.
+      */
+    public void close() throws IOException {
+        
+        if (rowsSupplied != height) {
+            throw new IllegalStateException("Only " + rowsSupplied + " of "
+                                                + height + " rows written!");
+        }
+        
+        encodeRow(height - 1, aboveRow, pendingRow, null);
+        flushBlock();
+        
+        long footerOffset = position;
+        writeVarint(segmentCount);
+        int previous = 0;
+        for (int s = 0; s < segmentCount; s++) {
+            int label = segmentLabels[s];
+            writeVarint(label - previous);
+            writeVarint(lastRows.get(label) - label / width);
+            previous = label;
+        }
+        flushBlock();
+        for (long offset: keyframeOffsets)
+            out.writeLong(offset);
+        out.writeLong(footerOffset);
+        out.close();
+        deflater.end();
+    }
+    
+    
+    /** Closes the file without writing the footer and deletes it, so that a
+      * failed write leaves no truncated file behind. Errors while closing are
+      * ignored.
+      */
+    public void abort() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // the file is being discarded anyway
+        }
+        deflater.end();
+        new File(fileName).delete();
+    }
+    
+    
+    /** Records that the given label starts a run at the given location,
+      * checking that it is a labelMap label.
+      *
+      * @param label the label of the run.
+      * @param row the row of the run.
+      * @param col the column of the run's first pixel.
+      * @throws IllegalArgumentException if the label is neither a segment
+      *         already seen nor the index of this pixel.
+      */
+    private void recordLabel(int label, int row, int col) {
+        
+        if (lastRows.containsKey(label)) {
+            lastRows.put(label, row);
+            return;
+        }
+        if (label != row * width + col) {
+            throw new IllegalArgumentException("Label " + label + " at (" + row
+                                                   + ", " + col + ") is not "
+                                                   + "its segment's first pixel");
+        }
+        lastRows.put(label, row);
+        if (segmentCount == segmentLabels.length) {
+            int[] grown = new int[2 * segmentCount];
+            System.arraycopy(segmentLabels, 0, grown, 0, segmentCount);
+            segmentLabels = grown;
+        }
+        segmentLabels[segmentCount++] = label;
+    }
+    
+    
+    /** Codes one row, and its boundary pixels if contours are recorded,
+      * starting a new block first if the row is a keyframe.
+      *
+      * @param row the index of the row being coded.
+      * @param above the labels of the row above; null if there is none.
+      * @param labels the labels of the row being coded.
+      * @param below the labels of the row below; null if there is none.
+      * @throws IOException if a finished block cannot be written.
+      */
+    private void encodeRow(int row, int[] above, int[] labels, int[] below)
+        throws IOException {
+        
+        boolean keyframe = (row % KEYFRAME_INTERVAL == 0);
+        if (keyframe) {
+            if (row > 0)
+                flushBlock();
+            keyframeOffsets[row / KEYFRAME_INTERVAL] = position;
+        }
+        
+        int transitionCount = keyframe ? 0 : findTransitions(above, transitions);
+        int next = 0;       // first transition right of start
+        int previous = 0;   // label of the previous run
+        int beforePrevious = -1;
+        int start = 0;
+        while (start < width) {
+            int end = start + 1;
+            while ((end < width) && (labels[end] == labels[start]))
+                end++;
+            int label = labels[start];
+            
+            int labelTag;
+            if (!keyframe && (above[start] == label))
+                labelTag = SAME_AS_ABOVE;
+            else if (label == row * width + start)
+                labelTag = NEW_SEGMENT;
+            else if (!keyframe && (above[end - 1] == label))
+                labelTag = ABOVE_END;
+            else if (label == beforePrevious)
+                labelTag = BEFORE_PREVIOUS;
+            else
+                labelTag = DELTA;
+            
+            while ((next < transitionCount) && (transitions[next] <= start))
+                next++;
+            int endCode = EXPLICIT_END;
+            for (int t = 0; (t < REFERENCES) && (next + t < transitionCount); t++) {
+                int shift = end - transitions[next + t];
+                if ((shift >= -MAX_SHIFT) && (shift <= MAX_SHIFT)) {
+                    endCode = t * (2 * MAX_SHIFT + 1) + shift + MAX_SHIFT;
+                    break;
+                }
+            }
+            
+            block.write((labelTag << END_BITS) | endCode);
+            if (endCode == EXPLICIT_END)
+                writeVarint(end - start);
+            if (labelTag == DELTA) {
+                int delta = label - previous;
+                writeVarint((delta << 1) ^ (delta >> 31));
+            }
+            beforePrevious = previous;
+            previous = label;
+            start = end;
+        }
+        
+        if (contours) {
+            int boundaryCount = 0;
+            for (int j = 0; j < width; j++) {
+                if (isVerticalBoundary(above, labels, below, j))
+                    boundaryCount++;
+            }
+            writeVarint(boundaryCount);
+            int last = -1;
+            for (int j = 0; j < width; j++) {
+                if (isVerticalBoundary(above, labels, below, j)) {
+                    writeVarint(j - last - 1);
+                    last = j;
+                }
+            }
+        }
+    }
+    
+    
+    /** Lists the columns at which the given row's label changes, followed by
+      * the row's width.
+      *
+      * @param labels the labels of a row.
+      * @param transitions receives the transition columns, in ascending
+      *        order; must have room for width entries.
+      * @return the number of transitions, including the row end.
+      */
+    static int findTransitions(int[] labels, int[] transitions) {
+        int count = 0;
+        for (int j = 1; j < labels.length; j++) {
+            if (labels[j] != labels[j - 1])
+                transitions[count++] = j;
+        }
+        transitions[count++] = labels.length;
+        return count;
+    }
+    
+    
+    /** Returns whether the given pixel has a left or right neighbour in
+      * another segment. Such pixels are boundary pixels that the reader can
+      * find from the row's runs alone.
+      *
+      * @param labels the labels of the pixel's row.
+      * @param col the column of the pixel.
+      * @return true if the pixel is at either end of its run.
+      */
+    static boolean isHorizontalBoundary(int[] labels, int col) {
+        int label = labels[col];
+        return ((col > 0) && (labels[col - 1] != label))
+                || ((col < labels.length - 1) && (labels[col + 1] != label));
+    }
+    
+    
+    /** Returns whether the given pixel is a boundary pixel only because its
+      * neighbour above or below is in another segment. These are the
+      * boundary pixels that have to be stored.
+      *
+      * @param above the labels of the row above; null if there is none.
+      * @param labels the labels of the pixel's row.
+      * @param below the labels of the row below; null if there is none.
+      * @param col the column of the pixel.
+      * @return true if the pixel is a boundary pixel not implied by its run.
+      */
+    private boolean isVerticalBoundary(int[] above, int[] labels, int[] below,
+                                       int col) {
+        int label = labels[col];
+        return !isHorizontalBoundary(labels, col)
+                && (((above != null) && (above[col] != label))
+                    || ((below != null) && (below[col] != label)));
+    }
+    
+    
+    /** Compresses the current block and writes it to the file, preceded by
+      * its uncompressed length.
+      *
+      * @throws IOException if the block cannot be written.
+      */
+    private void flushBlock() throws IOException {
+        
+        byte[] raw = block.toByteArray();
+        out.writeInt(raw.length);
+        position += 4;
+        
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(deflated);
+            out.write(deflated, 0, count);
+            position += count;
+        }
+        block.reset();
+    }
+    
+    
+    /** Appends a non-negative int to the current block as a varint, 7 bits
+      * per byte with the low bits first and the high bit set on all but the
+      * last byte.
+      *
+      * @param value the value to write, treated as unsigned.
+      */
+    private void writeVarint(int value) {
+        while ((value & ~0x7f) != 0) {
+            block.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        block.write(value);
+    }
+}
+    
\ No newline at end of file
@@ -0,0 +1,173 @@
+/** Tracks the progress of a segmentation and decides when it should stop.
+  * 
+  * A monitor carries an optional deadline and a cancellation flag. The
+  * segmenter reports each stage and its progress to the monitor, and polls it
+  * while merging; once the deadline passes or cancel is called, the merge
+  * stops and the segments formed by the edges processed so far are returned.
+  * All methods may be called from threads other than the one segmenting.
+  * 
+  * @author agent
+  */
+public class SegmentationMonitor {
+    
+    private final static long NO_DEADLINE = Long.MAX_VALUE;
+    private final static long NANOS_PER_MILLI = 1000000L;
+    
+    private final long deadline; // System.nanoTime() value, or NO_DEADLINE
+    private volatile boolean cancelled;
+    private volatile boolean partial;
+    private volatile Progress progress; // replaced whole on every report
+    
+    
+    /** Constructs a monitor with no deadline; the segmentation only stops
+      * early if cancel is called.
+      */
+    public SegmentationMonitor() {
+        this.deadline = NO_DEADLINE;
+        this.cancelled = false;
+        this.partial = false;
+        this.progress = new Progress("", 0, 0);
+    }
+    
+    
+    /** Constructs a monitor whose deadline is the given number of
+      * milliseconds from now. Timeouts too long to represent in nanoseconds
+      * are treated as no deadline.
+      * 
+      * @param timeoutMillis the time allowed for the segmentation.
+      * @throws IllegalArgumentException if timeoutMillis is negative.
+      */
+    public SegmentationMonitor(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Timeout cannot be negative!");
+        }
+        if (timeoutMillis > Long.MAX_VALUE / NANOS_PER_MILLI)
+            this.deadline = NO_DEADLINE;
+        else
+            this.deadline = System.nanoTime() + timeoutMillis * NANOS_PER_MILLI;
+        this.cancelled = false;
+        this.partial = false;
+        this.progress = new Progress("", 0, 0);
+    }
+    
+    
+    /** Requests that the segmentation stop as soon as possible. */
+    public void cancel() {
+        cancelled = true;
+    }
+    
+    
+    /** Returns whether cancel has been called.
+      * 
+      * @return true if the segmentation has been cancelled.
+      */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    
+    /** Returns whether the segmentation should stop, either because it was
+      * cancelled or because the deadline has passed.
+      * 
+      * @return true if the segmentation should stop.
+      */
+    public boolean shouldStop() {
+        return cancelled || ((deadline != NO_DEADLINE) 
+                                 && (System.nanoTime() - deadline >= 0));
+    }
+    
+    
+    /** Returns whether the segmentation stopped before processing every
+      * edge, i.e. whether its result is only partial.
+      * 
+      * @return true if the result is partial.
+      */
+    public boolean isPartial() {
+        return partial;
+    }
+    
+    
+    /** Records that the segmentation stopped early. */
+    void markPartial() {
+        partial = true;
+    }
+    
+    
+    /** Records the current stage and how far it has progressed.
+      * 
+      * @param stage the name of the stage, e.g. "edges" or "merge".
+      * @param done the amount of work completed in the stage.
+      * @param total the total amount of work in the stage.
+      */
+    void report(String stage, long done, long total) {
+        this.progress = new Progress(stage, done, total);
+    }
+    
+    
+    /** Returns the most recently reported progress. The stage and counts are
+      * always from the same report.
+      * 
+      * @return a snapshot of the current stage and its progress.
+      */
+    public Progress getProgress() {
+        return progress;
+    }
+    
+    
+    /** A snapshot of the progress of one stage. This implementation is
+      * immutable.
+      */
+    public static class Progress {
+        
+        private final String stage;
+        private final long done;
+        private final long total;
+        
+        
+        /** Constructs a snapshot of the given stage.
+          * 
+          * @param stage the name of the stage.
+          * @param done the amount of work completed in the stage.
+          * @param total the total amount of work in the stage.
+          */
+        Progress(String stage, long done, long total) {
+            this.stage = stage;
+            this.done = done;
+            this.total = total;
+        }
+        
+        
+        /** Returns the name of the stage.
+          * 
+          * @return the stage, e.g. "edges" or "merge", or "" if none has
+          *         been reported.
+          */
+        public String getStage() {
+            return stage;
+        }
+        
+        
+        /** Returns the amount of work completed in the stage.
+          * 
+          * @return the work done so far, e.g. edges merged.
+          */
+        public long getDone() {
+            return done;
+        }
+        
+        
+        /** Returns the total amount of work in the stage.
+          * 
+          * @return the total work, e.g. the number of edges to merge.
+          */
+        public long getTotal() {
+            return total;
+        }
+        
+        
+        @Override
+        public String toString() {
+            return stage + " " + done + "/" + total;
+        }
+    }
+}
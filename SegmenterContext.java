@@ -0,0 +1,529 @@
+import java.awt.Color;
+import java.util.Arrays;
+
+/** Reusable working memory for segmenting many images in a row.
+  * 
+  * ImageSegmenter.segment builds Pixel, Edge and Node objects and several
+  * collections for every image. A context instead keeps the raster, edges,
+  * sort scratch, forest and labels in primitive arrays that are reused from
+  * one image to the next and only grow when an image has more pixels than any
+  * seen before, so a batch of same-size images allocates next to nothing
+  * once the first has been processed.
+  * 
+  * The segmentation is the same as ImageSegmenter's: edges are ordered by
+  * weight and then by the indices of the pixels they connect, and the merge
+  * and union rules are those of ImageSegmenter.merge and
+  * DisjointSetForest.union. Labels follow ImageSegmenter.labelMap, i.e. each
+  * pixel is labelled with the lowest row * width + col index in its segment.
+  * 
+  * A context is not thread-safe; use one per worker thread.
+  * 
+  * @author agent
+  */
+public class SegmenterContext {
+    
+    private final static double[] CHANNEL_WEIGHTS = {0.30, 0.59, 0.11};
+    private final static int NEIGHBOURS = 4; // forward edges per pixel
+    private final static double INITIAL_GRANULARITY = 500.0;
+    private final static double GRANULARITY_STEP = 4.0; // search growth factor
+    
+    private int width;
+    private int height;
+    private int edgeCount;
+    private int segmentCount;
+    private boolean segmented; // whether labels match the current edges
+    private double granularity;
+    
+    private int pixelCapacity;
+    private double[] luminance;
+    private int[] parent;
+    private int[] size;
+    private double[] id;
+    private int[] rank;
+    private int[] labels;
+    private int[] segmentOf; // root -> segment number, in label order
+    
+    private int edgeCapacity;
+    private int[] edgeFrom;
+    private int[] edgeTo;
+    private double[] edgeWeight;
+    private int[] order;   // edge indices, sorted by weight
+    private int[] scratch; // merge sort buffer
+    
+    
+    /** Constructs an empty context; buffers are allocated on first use. */
+    public SegmenterContext() {
+        this.pixelCapacity = 0;
+        this.edgeCapacity = 0;
+    }
+    
+    
+    /** Segments the given image and returns its label map.
+      * 
+      * @param rgbArray a grid with colors in each position.
+      * @param granularity controls the size of each segment.
+      * @throws IllegalArgumentException if rgbArray is empty.
+      * @return the label of each pixel in row-major order. The array belongs
+      *         to this context and is overwritten by the next call; it may be
+      *         longer than width * height.
+      */
+    public int[] segment(Color[][] rgbArray, double granularity) {
+        
+        prepare(rgbArray);
+        this.granularity = granularity;
+        merge(granularity, 0);
+        label();
+        return labels;
+    }
+    
+    
+    /** Segments the given image with a granularity chosen so that the number
+      * of segments falls in the given range, and returns its label map.
+      * 
+      * The edges are built and sorted only once; each search pass repeats
+      * just the merge, counting the segments left as unions are made. A pass
+      * stops as soon as the count drops below minSegments, since the
+      * granularity is then known to be too coarse. The search grows or
+      * shrinks the granularity by GRANULARITY_STEP until the range is
+      * bracketed, then bisects geometrically. The segment count generally,
+      * but not strictly, falls as the granularity rises, so the range may be
+      * missed; the granularity giving the fewest segments above maxSegments
+      * is then used, or failing that the finest too-coarse one.
+      * 
+      * @param rgbArray a grid with colors in each position.
+      * @param minSegments the fewest segments wanted.
+      * @param maxSegments the most segments wanted.
+      * @param maxPasses the most search passes to make; one more merge may
+      *        follow to rebuild the chosen segmentation.
+      * @throws IllegalArgumentException if rgbArray is empty, the range is
+      *         empty or not positive, minSegments exceeds the number of
+      *         pixels, or maxPasses is not positive.
+      * @return the label of each pixel in row-major order, as for
+      *         segment(Color[][], double). getGranularity() returns the
+      *         granularity that was chosen.
+      */
+    public int[] segment(Color[][] rgbArray, int minSegments, int maxSegments,
+                         int maxPasses) {
+        
+        if ((minSegments < 1) || (minSegments > maxSegments) 
+                || (maxPasses < 1)) {
+            throw new IllegalArgumentException("Illegal segment count range!");
+        }
+        checkImage(rgbArray);
+        if (minSegments > (long) rgbArray.length * rgbArray[0].length) {
+            throw new IllegalArgumentException("Image has fewer than " 
+                                                   + minSegments + " pixels!");
+        }
+        prepare(rgbArray);
+        
+        double low = 0.0;   // finest granularity known to give too many
+        double high = -1.0; // coarsest known to give too few; -1 if none
+        double bestLow = -1.0; // too-many granularity giving fewest segments
+        int bestLowCount = Integer.MAX_VALUE;
+        double g = INITIAL_GRANULARITY;
+        double last = g;
+        boolean lastComplete = false; // whether the last merge ran to the end
+        double chosen = -1.0;
+        
+        for (int pass = 0; pass < maxPasses; pass++) {
+            int count = merge(g, minSegments);
+            last = g;
+            lastComplete = (count >= minSegments);
+            if (count < minSegments) {
+                high = g;
+            } else if (count > maxSegments) {
+                low = g;
+                if (count < bestLowCount) {
+                    bestLow = g;
+                    bestLowCount = count;
+                }
+            } else {
+                chosen = g;
+                break;
+            }
+            
+            if (high < 0)
+                g = low * GRANULARITY_STEP;
+            else if (low == 0.0)
+                g = high / GRANULARITY_STEP;
+            else
+                g = Math.sqrt(low * high);
+        }
+        
+        if (chosen < 0)
+            chosen = (bestLow >= 0) ? bestLow : high;
+        if ((chosen != last) || !lastComplete)
+            merge(chosen, 0);
+        
+        this.granularity = chosen;
+        label();
+        return labels;
+    }
+    
+    
+    /** Returns the granularity used for the last image segmented.
+      * 
+      * @return the given or chosen granularity.
+      */
+    public double getGranularity() {
+        return granularity;
+    }
+    
+    
+    /** Loads the luminance of the given image and builds its sorted edges.
+      * 
+      * @param rgbArray a grid with colors in each position.
+      * @throws IllegalArgumentException if rgbArray is empty.
+      */
+    private void prepare(Color[][] rgbArray) {
+        
+        checkImage(rgbArray);
+        segmented = false;
+        
+        this.height = rgbArray.length;
+        this.width = rgbArray[0].length;
+        ensureCapacity(width * height);
+        
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                Color rgb = rgbArray[i][j];
+                luminance[i * width + j] = ((CHANNEL_WEIGHTS[0] * rgb.getRed()) +
+                                            (CHANNEL_WEIGHTS[1] * rgb.getGreen()) +
+                                            (CHANNEL_WEIGHTS[2] * rgb.getBlue()));
+            }
+        }
+        
+        buildEdges();
+        sortEdges();
+    }
+    
+    
+    /** Checks that the given image has at least one pixel.
+      * 
+      * @param rgbArray a grid with colors in each position.
+      * @throws IllegalArgumentException if rgbArray is empty.
+      */
+    private static void checkImage(Color[][] rgbArray) {
+        if ((rgbArray == null) || (rgbArray.length == 0) 
+                || (rgbArray[0].length == 0)) {
+            throw new IllegalArgumentException("Image must be non-empty!");
+        }
+    }
+    
+    
+    /** Returns the width of the last image segmented.
+      * 
+      * @return the number of columns in the label map.
+      */
+    public int getWidth() {
+        return width;
+    }
+    
+    
+    /** Returns the height of the last image segmented.
+      * 
+      * @return the number of rows in the label map.
+      */
+    public int getHeight() {
+        return height;
+    }
+    
+    
+    /** Returns the number of segments in the last image segmented.
+      * 
+      * @return the number of distinct labels.
+      */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+    
+    
+    /** Builds the region adjacency graph of the last image segmented.
+      * 
+      * The graph is derived from the edges, still sorted by weight, and the
+      * final forest roots, without revisiting the image: one sweep counts the
+      * edges crossing each boundary, a second fills them in under both of
+      * their segments, and each row is then collapsed into one entry per
+      * neighbouring segment. Because the
+      * edges are visited lightest first, the first edge seen across a
+      * boundary gives its minimum weight.
+      * 
+      * @throws IllegalStateException if no image has been segmented yet, or
+      *         the last call to segment failed before labelling.
+      * @return a newly allocated graph, in which segment s has label
+      *         getLabel(s) and segments are numbered in ascending label order.
+      */
+    public RegionAdjacencyGraph getRegionAdjacencyGraph() {
+        
+        if (!segmented) {
+            throw new IllegalStateException("No image has been segmented!");
+        }
+        
+        int[] offsets = new int[segmentCount + 1];
+        for (int k = 0; k < edgeCount; k++) {
+            int e = order[k];
+            int a = segmentOf[find(edgeFrom[e])];
+            int b = segmentOf[find(edgeTo[e])];
+            if (a != b) {
+                offsets[a + 1]++;
+                offsets[b + 1]++;
+            }
+        }
+        for (int s = 0; s < segmentCount; s++)
+            offsets[s + 1] += offsets[s];
+        
+        int crossing = offsets[segmentCount];
+        int[] next = new int[segmentCount];
+        System.arraycopy(offsets, 0, next, 0, segmentCount);
+        int[] crossNeighbor = new int[crossing];
+        double[] crossWeight = new double[crossing];
+        for (int k = 0; k < edgeCount; k++) {
+            int e = order[k];
+            int a = segmentOf[find(edgeFrom[e])];
+            int b = segmentOf[find(edgeTo[e])];
+            if (a != b) {
+                int slot = next[a]++;
+                crossNeighbor[slot] = b;
+                crossWeight[slot] = edgeWeight[e];
+                slot = next[b]++;
+                crossNeighbor[slot] = a;
+                crossWeight[slot] = edgeWeight[e];
+            }
+        }
+        
+        // Collapse each row in place, using next as neighbour -> entry map
+        int[] rowOffsets = new int[segmentCount + 1];
+        int[] boundaryLength = new int[crossing];
+        double[] minWeight = new double[crossing];
+        double[] sumWeight = new double[crossing];
+        Arrays.fill(next, -1);
+        int entries = 0;
+        for (int s = 0; s < segmentCount; s++) {
+            rowOffsets[s] = entries;
+            for (int i = offsets[s]; i < offsets[s + 1]; i++) {
+                int neighbor = crossNeighbor[i];
+                if (next[neighbor] < 0) {
+                    next[neighbor] = entries;
+                    crossNeighbor[entries] = neighbor;
+                    boundaryLength[entries] = 0;
+                    minWeight[entries] = crossWeight[i];
+                    sumWeight[entries] = 0.0;
+                    entries++;
+                }
+                int entry = next[neighbor];
+                boundaryLength[entry]++;
+                sumWeight[entry] += crossWeight[i];
+            }
+            for (int i = rowOffsets[s]; i < entries; i++)
+                next[crossNeighbor[i]] = -1;
+        }
+        rowOffsets[segmentCount] = entries;
+        
+        int[] segmentLabels = new int[segmentCount];
+        for (int p = 0; p < width * height; p++) {
+            if (labels[p] == p)
+                segmentLabels[segmentOf[find(p)]] = p;
+        }
+        
+        double[] meanWeight = new double[entries];
+        for (int i = 0; i < entries; i++)
+            meanWeight[i] = sumWeight[i] / boundaryLength[i];
+        
+        return new RegionAdjacencyGraph(segmentLabels, rowOffsets,
+            Arrays.copyOf(crossNeighbor, entries),
+            Arrays.copyOf(boundaryLength, entries),
+            Arrays.copyOf(minWeight, entries), meanWeight);
+    }
+    
+    
+    /** Grows the buffers if they cannot hold an image of the given number of
+      * pixels.
+      * 
+      * @param pixels the number of pixels in the next image.
+      */
+    private void ensureCapacity(int pixels) {
+        if (pixels > pixelCapacity) {
+            pixelCapacity = pixels;
+            luminance = new double[pixels];
+            parent = new int[pixels];
+            size = new int[pixels];
+            id = new double[pixels];
+            rank = new int[pixels];
+            labels = new int[pixels];
+            segmentOf = new int[pixels];
+        }
+        int edges = NEIGHBOURS * pixels;
+        if (edges > edgeCapacity) {
+            edgeCapacity = edges;
+            edgeFrom = new int[edges];
+            edgeTo = new int[edges];
+            edgeWeight = new double[edges];
+            order = new int[edges];
+            scratch = new int[edges];
+        }
+    }
+    
+    
+    /** Builds one edge for every pair of 8-connected pixels, from the lower
+      * to the higher pixel index, in order of those indices.
+      */
+    private void buildEdges() {
+        edgeCount = 0;
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                int from = i * width + j;
+                if (j + 1 < width)
+                    addEdge(from, from + 1);
+                if (i + 1 < height) {
+                    if (j > 0)
+                        addEdge(from, from + width - 1);
+                    addEdge(from, from + width);
+                    if (j + 1 < width)
+                        addEdge(from, from + width + 1);
+                }
+            }
+        }
+    }
+    
+    
+    /** Appends an edge between the given pixels.
+      * 
+      * @param from the lower pixel index.
+      * @param to the higher pixel index.
+      */
+    private void addEdge(int from, int to) {
+        edgeFrom[edgeCount] = from;
+        edgeTo[edgeCount] = to;
+        edgeWeight[edgeCount] = Math.abs(luminance[from] - luminance[to]);
+        order[edgeCount] = edgeCount;
+        edgeCount++;
+    }
+    
+    
+    /** Sorts the edge order by weight with a stable, bottom-up merge sort, so
+      * that edges of equal weight keep the pixel index order they were built
+      * in.
+      */
+    private void sortEdges() {
+        int[] source = order;
+        int[] target = scratch;
+        for (int run = 1; run < edgeCount; run *= 2) {
+            for (int low = 0; low < edgeCount; low += 2 * run) {
+                int mid = Math.min(low + run, edgeCount);
+                int high = Math.min(low + 2 * run, edgeCount);
+                int left = low;
+                int right = mid;
+                for (int k = low; k < high; k++) {
+                    if ((right >= high) || ((left < mid) 
+                            && (edgeWeight[source[left]] 
+                                    <= edgeWeight[source[right]]))) {
+                        target[k] = source[left++];
+                    } else {
+                        target[k] = source[right++];
+                    }
+                }
+            }
+            int[] swap = source;
+            source = target;
+            target = swap;
+        }
+        order = source;
+        scratch = target;
+    }
+    
+    
+    /** Merges the sorted edges into segments, stopping early once fewer than
+      * floor segments remain.
+      * 
+      * @param g the granularity for the image.
+      * @param floor the segment count below which to stop; 0 to merge fully.
+      * @return the number of segments when the merge ended.
+      */
+    private int merge(double g, int floor) {
+        int pixels = width * height;
+        int segments = pixels;
+        for (int p = 0; p < pixels; p++) {
+            parent[p] = p;
+            size[p] = 1;
+            id[p] = 0.0;
+            rank[p] = 0;
+        }
+        
+        for (int k = 0; k < edgeCount; k++) {
+            int e = order[k];
+            int sn = find(edgeFrom[e]);
+            int sm = find(edgeTo[e]);
+            
+            if (sn != sm) {
+                double weight = edgeWeight[e];
+                if (weight < Math.min(id[sn] + g / size[sn], 
+                                      id[sm] + g / size[sm])) {
+                    union(sn, sm, weight);
+                    if (--segments < floor)
+                        return segments;
+                }
+            }
+        }
+        return segments;
+    }
+    
+    
+    /** Finds the root of the given pixel, compressing the path to it.
+      * 
+      * @param p the pixel index.
+      * @return the index of the root pixel.
+      */
+    private int find(int p) {
+        int root = p;
+        while (parent[root] != root)
+            root = parent[root];
+        while (parent[p] != root) {
+            int next = parent[p];
+            parent[p] = root;
+            p = next;
+        }
+        return root;
+    }
+    
+    
+    /** Joins the segments with the given roots, following the rules of
+      * DisjointSetForest.union.
+      * 
+      * @param one the root of the first segment.
+      * @param two the root of the second segment.
+      * @param weight the weight of the edge joining them.
+      */
+    private void union(int one, int two, double weight) {
+        if (rank[one] < rank[two]) {
+            parent[one] = two;
+            size[two] += size[one];
+            id[two] = weight;
+        } else {
+            parent[two] = one;
+            size[one] += size[two];
+            id[one] = weight;
+            if (rank[one] == rank[two])
+                rank[one]++;
+        }
+    }
+    
+    
+    /** Labels each pixel with the lowest pixel index in its segment, reusing
+      * the size array to map each root to its label.
+      */
+    private void label() {
+        int pixels = width * height;
+        segmentCount = 0;
+        for (int p = 0; p < pixels; p++)
+            size[p] = -1;
+        for (int p = 0; p < pixels; p++) {
+            int root = find(p);
+            if (size[root] < 0) {
+                size[root] = p;
+                segmentOf[root] = segmentCount++;
+            }
+            labels[p] = size[root];
+        }
+        segmented = true;
+    }
+}